@@ -0,0 +1,146 @@
+package com.ussdchat.app;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Tracks the health of the accessibility connection between sessions.
+ *
+ * OEM battery managers can kill our process or leave the service bound but
+ * idle for a long time; the first dial after that used to be slow or lost.
+ * The watchdog notices a dead or stale connection, re-warms it before a
+ * dial, and records how long each session took to show its first screen,
+ * split by cold and warm starts.
+ *
+ * All methods are called on the main thread.
+ */
+final class AccessibilityWatchdog {
+
+    private static final String TAG = "A11yWatchdog";
+
+    // No event or ping for this long and we treat the connection as stale
+    static final long STALE_MS = 2 * 60 * 1000;
+    // How long a dial waits for a (re)connecting service before giving up
+    static final long CONNECT_WAIT_MS = 3000;
+    private static final long POLL_MS = 100;
+
+    enum Health { DEAD, STALE, WARM }
+
+    private static UssdAccessibilityService service;
+    private static long lastHeartbeat;
+
+    // Set when the connection is (re)established, taken by the next dial
+    private static boolean coldPending;
+    private static long dialStartedAt;
+    private static boolean dialWasCold;
+
+    private static int coldStarts, warmStarts;
+    private static long coldTotalMs, warmTotalMs;
+    private static long lastStartLatencyMs = -1;
+
+    private AccessibilityWatchdog() {}
+
+    static void onConnected(UssdAccessibilityService s) {
+        service = s;
+        coldPending = true;
+        heartbeat();
+    }
+
+    static void onDisconnected(UssdAccessibilityService s) {
+        if (service == s) service = null;
+    }
+
+    static void heartbeat() {
+        lastHeartbeat = SystemClock.elapsedRealtime();
+    }
+
+    /** The connected service, or null if the connection is dead. */
+    static UssdAccessibilityService liveService() {
+        return check() != Health.DEAD ? service : null;
+    }
+
+    static Health check() {
+        if (service == null || !service.isConnectionAlive()) return Health.DEAD;
+        if (SystemClock.elapsedRealtime() - lastHeartbeat > STALE_MS) return Health.STALE;
+        return Health.WARM;
+    }
+
+    /** Re-warms a stale connection. Returns the health as it was before warming. */
+    static Health prewarm() {
+        Health health = check();
+        if (health == Health.STALE) {
+            Log.d(TAG, "Connection idle, re-warming");
+            if (service.rewarm()) {
+                coldPending = true;
+                heartbeat();
+            } else {
+                health = Health.DEAD;
+            }
+        }
+        return health;
+    }
+
+    /**
+     * Re-warms the connection and runs {@code onReady} once it is usable, or
+     * {@code onDead} if the service hasn't (re)connected within {@link #CONNECT_WAIT_MS}.
+     */
+    static void whenReady(Runnable onReady, Runnable onDead) {
+        Handler handler = new Handler(Looper.getMainLooper());
+        long deadline = SystemClock.elapsedRealtime() + CONNECT_WAIT_MS;
+        prewarm();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (check() != Health.DEAD) {
+                    onReady.run();
+                } else if (SystemClock.elapsedRealtime() < deadline) {
+                    handler.postDelayed(this, POLL_MS);
+                } else {
+                    Log.w(TAG, "Accessibility service did not connect");
+                    onDead.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * A dial is cold if the connection was established or re-warmed since the
+     * previous dial, whether that happened on resume or just now.
+     */
+    static void onDialStarted() {
+        dialStartedAt = SystemClock.elapsedRealtime();
+        dialWasCold = coldPending;
+        coldPending = false;
+    }
+
+    static void onFirstScreen() {
+        if (dialStartedAt == 0) return;
+        long latency = SystemClock.elapsedRealtime() - dialStartedAt;
+        dialStartedAt = 0;
+        lastStartLatencyMs = latency;
+        if (dialWasCold) {
+            coldStarts++;
+            coldTotalMs += latency;
+        } else {
+            warmStarts++;
+            warmTotalMs += latency;
+        }
+        Log.i(TAG, "Session start latency " + latency + " ms (" + (dialWasCold ? "cold" : "warm")
+                + "); " + summary());
+    }
+
+    static long lastStartLatencyMs() {
+        return lastStartLatencyMs;
+    }
+
+    static boolean lastStartWasCold() {
+        return dialWasCold;
+    }
+
+    static String summary() {
+        return "cold avg " + (coldStarts > 0 ? coldTotalMs / coldStarts : 0) + " ms over " + coldStarts
+                + ", warm avg " + (warmStarts > 0 ? warmTotalMs / warmStarts : 0) + " ms over " + warmStarts;
+    }
+}
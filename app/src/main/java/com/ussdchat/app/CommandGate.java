@@ -0,0 +1,80 @@
+package com.ussdchat.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a chat command (input or cancel) may touch the USSD dialog.
+ *
+ * Every screen shown to the user gets a new generation number, and every
+ * command carries a sequence number plus the generation it was typed
+ * against. A command is rejected if:
+ * - it is older than one already seen (duplicate or reordered),
+ * - it is an input for a screen that has since been replaced, or
+ * - it is a second input for the same screen (double send).
+ * A cancel targets the session and may land on any screen of it, but not
+ * on a later session. The chat only learns generations that were published
+ * to it, while jump steps, replays and swallowed drop screens bump the
+ * generation unseen, so cancels are measured against the last published
+ * generation as of the previous session's end.
+ *
+ * Commands are applied on the main thread, one at a time; the lock only
+ * guards against callers that forget.
+ */
+final class CommandGate {
+
+    private static final AtomicLong seqSource = new AtomicLong();
+
+    private long lastSeq;
+    private long generation;
+    private long answeredGeneration = -1;
+    private long publishedGeneration;   // latest generation handed to the chat
+    private long cancelFloor;           // publishedGeneration when the last session ended
+    private boolean sessionActive;
+
+    /** Sequence numbers are process-wide so a recreated activity keeps counting up. */
+    static long nextSeq() {
+        return seqSource.incrementAndGet();
+    }
+
+    /** A new screen is up; returns its generation. */
+    synchronized long onScreen() {
+        generation++;
+        sessionActive = true;
+        return generation;
+    }
+
+    /** The screen of {@code generation} was handed to the chat. */
+    synchronized void onPublished(long generation) {
+        if (generation > publishedGeneration) publishedGeneration = generation;
+    }
+
+    synchronized void onSessionEnd() {
+        sessionActive = false;
+        cancelFloor = publishedGeneration;
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    synchronized boolean admitInput(long seq, long targetGeneration) {
+        if (!admitSeq(seq)) return false;
+        if (!sessionActive || targetGeneration != generation || answeredGeneration == generation) {
+            return false;
+        }
+        answeredGeneration = generation;
+        return true;
+    }
+
+    synchronized boolean admitCancel(long seq, long targetGeneration) {
+        if (!admitSeq(seq)) return false;
+        // Also covers a dial (or re-dial) whose first screen isn't up yet
+        return targetGeneration >= cancelFloor;
+    }
+
+    private boolean admitSeq(long seq) {
+        if (seq <= lastSeq) return false;
+        lastSeq = seq;
+        return true;
+    }
+}
@@ -5,14 +5,18 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.ServiceInfo;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 import android.provider.Settings;
 import android.telecom.TelecomManager;
+import android.text.Editable;
+import android.text.InputType;
 import android.text.TextUtils;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -29,10 +33,13 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
+import androidx.core.content.FileProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class MainActivity extends AppCompatActivity {
@@ -46,38 +53,69 @@ public class MainActivity extends AppCompatActivity {
     private List<ChatMessage> chatMessages = new ArrayList<>();
 
     private boolean ussdSessionActive = false;
+    private boolean pinMode = false;
+    // Generation of the latest screen shown; inputs and cancels target it
+    private long screenGeneration = 0;
 
-    // Broadcast receiver to get USSD responses from AccessibilityService
+    // Lets the accessibility service skip bringAppToFront when we're already on top
+    private static boolean resumed = false;
+    // Runtime permissions are checked once per process, not on every launch
+    private static boolean permissionsChecked = false;
+
+    private static final String[] CANCEL_WORDS = {"cancel", "exit", "quit"};
+
+    // Broadcast receiver woken by AccessibilityService; the responses
+    // themselves are waiting in ResponseBuffer
     private BroadcastReceiver ussdResponseReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if ("com.ussdchat.USSD_RESPONSE".equals(intent.getAction())) {
-                String response = intent.getStringExtra("response");
-                boolean sessionEnd = intent.getBooleanExtra("session_end", false);
+            drainResponses();
+        }
+    };
 
-                if (response != null && !response.isEmpty()) {
-                    addBotMessage(response);
-                }
+    private void drainResponses() {
+        for (ResponseBuffer.Entry entry : ResponseBuffer.drain()) {
+            if (entry.type == ResponseBuffer.Type.NOTICE) {
+                addBotMessage(entry.text);
+                continue;
+            }
+            if (entry.type == ResponseBuffer.Type.REDIAL) {
+                addBotMessage(entry.text);
+                setPinMode(false);
+                if (ussdSessionActive) dialSession(null, true);
+                continue;
+            }
+            if (entry.generation > 0) screenGeneration = entry.generation;
 
-                if (sessionEnd) {
-                    ussdSessionActive = false;
-                    updateStatus(false);
-                    addBotMessage("✅ Session ended.");
-                    // Stop overlay
-                    stopService(new Intent(MainActivity.this, OverlayService.class));
-                }
-            } else if ("com.ussdchat.USSD_ERROR".equals(intent.getAction())) {
-                String error = intent.getStringExtra("error");
-                addBotMessage("❌ Error: " + (error != null ? error : "Unknown error"));
+            if (entry.type == ResponseBuffer.Type.ERROR) {
+                addBotMessage("❌ Error: " + (entry.text != null ? entry.text : "Unknown error"));
+                setPinMode(false);
                 ussdSessionActive = false;
                 updateStatus(false);
                 stopService(new Intent(MainActivity.this, OverlayService.class));
+                continue;
+            }
+
+            setPinMode(!entry.sessionEnd && entry.pinPrompt);
+
+            if (entry.text != null && !entry.text.isEmpty()) {
+                addBotMessage(entry.text);
+            }
+
+            if (entry.sessionEnd) {
+                ussdSessionActive = false;
+                updateStatus(false);
+                boolean failed = "FAILURE".equals(entry.screenKind) || "TIMEOUT".equals(entry.screenKind);
+                addBotMessage(failed ? "❌ Session ended." : "✅ Session ended.");
+                // Stop overlay
+                stopService(new Intent(MainActivity.this, OverlayService.class));
             }
         }
-    };
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTracker.onActivityCreated();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
@@ -94,7 +132,7 @@ public class MainActivity extends AppCompatActivity {
         chatRecyclerView.setAdapter(chatAdapter);
 
         // Welcome message
-        addBotMessage("👋 Welcome to UPI Chat!\n\nType \"hello\" or \"start\" to begin UPI session.\nType \"cancel\" or \"exit\" to end session.");
+        addBotMessage("👋 Welcome to UPI Chat!\n\nType \"hello\" or \"start\" to begin UPI session.\nOr type a menu name like \"send money\" to jump straight there.\nType \"cancel\" or \"exit\" to end session.");
 
         // Send button click
         sendButton.setOnClickListener(v -> sendMessage());
@@ -110,11 +148,34 @@ public class MainActivity extends AppCompatActivity {
 
         // Request permissions
         requestNeededPermissions();
+
+        // Load caches, compile the parser and create the notification channel
+        // off the main thread so the first dial doesn't pay for them
+        prewarmInBackground();
+
+        // First layout done - the chat is usable
+        chatRecyclerView.post(() -> {
+            StartupTracker.onInteractive();
+            reportFullyDrawn();
+        });
+    }
+
+    private void prewarmInBackground() {
+        Context app = getApplicationContext();
+        Thread t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            OverlayService.createNotificationChannel(app);
+            MenuCache.get(app);
+            SessionExporter.get(app);
+            UssdScreen.parse("1. warm-up");
+        }, "prewarm");
+        t.start();
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        resumed = true;
         // Register receiver
         IntentFilter filter = new IntentFilter();
         filter.addAction("com.ussdchat.USSD_RESPONSE");
@@ -124,22 +185,38 @@ public class MainActivity extends AppCompatActivity {
         } else {
             registerReceiver(ussdResponseReceiver, filter);
         }
+        // Anything that arrived while we were paused
+        drainResponses();
 
         // Check accessibility service status
         if (!isAccessibilityServiceEnabled()) {
             addBotMessage("⚠️ Accessibility Service is OFF.\nPlease enable 'UPI Chat' in Settings > Accessibility.");
+        } else if (!ussdSessionActive) {
+            // Warm the connection while the user is still typing
+            AccessibilityWatchdog.prewarm();
         }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        resumed = false;
         try {
             unregisterReceiver(ussdResponseReceiver);
         } catch (Exception ignored) {}
     }
 
+    static boolean isResumed() {
+        return resumed;
+    }
+
     private void sendMessage() {
+        // "cancel" still works at a PIN prompt; anything else typed there is a PIN
+        if (pinMode && ussdSessionActive && !isCancelWord(messageInput.getText())) {
+            sendPin();
+            return;
+        }
+
         String text = messageInput.getText().toString().trim();
         if (TextUtils.isEmpty(text)) return;
 
@@ -150,12 +227,15 @@ public class MainActivity extends AppCompatActivity {
         String lower = text.toLowerCase();
 
         // Handle cancel/exit
-        if (lower.equals("cancel") || lower.equals("exit") || lower.equals("quit")) {
+        if (isCancelWord(lower)) {
             if (ussdSessionActive) {
                 // Tell accessibility service to press Cancel on USSD dialog
                 Intent cancelIntent = new Intent("com.ussdchat.USSD_CANCEL");
+                cancelIntent.putExtra("seq", CommandGate.nextSeq());
+                cancelIntent.putExtra("generation", screenGeneration);
                 sendBroadcast(cancelIntent);
                 addBotMessage("🔄 Cancelling session...");
+                setPinMode(false);
                 ussdSessionActive = false;
                 updateStatus(false);
                 // Small delay then stop overlay
@@ -168,31 +248,23 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
 
+        // Ops: dump the session log and hand it to a share target
+        if (!ussdSessionActive && lower.equals("export")) {
+            addBotMessage("🔄 Exporting session log...");
+            SessionExporter.get(this).export((file, bytes, error) -> {
+                if (error != null) {
+                    addBotMessage("❌ Export failed: " + error.getMessage());
+                } else {
+                    addBotMessage("✅ Exported " + bytes + " bytes.");
+                    runOnUiThread(() -> shareExport(file));
+                }
+            });
+            return;
+        }
+
         // Handle start/hello - initiate USSD
         if (!ussdSessionActive && (lower.equals("hello") || lower.equals("start") || lower.equals("hi"))) {
-            if (!isAccessibilityServiceEnabled()) {
-                addBotMessage("⚠️ Please enable Accessibility Service first!\nGo to Settings > Accessibility > UPI Chat");
-                openAccessibilitySettings();
-                return;
-            }
-            if (!Settings.canDrawOverlays(this)) {
-                addBotMessage("⚠️ Please grant Overlay permission!");
-                requestOverlayPermission();
-                return;
-            }
-
-            // Start overlay to hide USSD dialog
-            startOverlayService();
-
-            // Dial USSD *99#
-            addBotMessage("🔄 Starting UPI session...");
-            ussdSessionActive = true;
-            updateStatus(true);
-
-            // Small delay to ensure overlay is up before USSD dialog appears
-            new Handler(Looper.getMainLooper()).postDelayed(() -> {
-                dialUssd("*99#");
-            }, 500);
+            startUssdSession(null);
             return;
         }
 
@@ -201,13 +273,151 @@ public class MainActivity extends AppCompatActivity {
             // Send user input to accessibility service
             Intent inputIntent = new Intent("com.ussdchat.USSD_INPUT");
             inputIntent.putExtra("input", text);
+            inputIntent.putExtra("seq", CommandGate.nextSeq());
+            inputIntent.putExtra("generation", screenGeneration);
             sendBroadcast(inputIntent);
             addBotMessage("🔄 Processing...");
         } else {
-            addBotMessage("No active session. Type \"hello\" to start.");
+            // Maybe a known menu name - dial and let the service play the cached path
+            startIfCachedRoute(text);
         }
     }
 
+    /**
+     * PIN entry: the digits are copied out of the field into a char buffer,
+     * handed straight to the accessibility service (no broadcast, no String,
+     * no chat history, no log) and wiped by it.
+     *
+     * PIN mode stays on until a screen that isn't a PIN prompt arrives, so a
+     * PIN that wasn't accepted is retyped into the masked field again.
+     */
+    private void sendPin() {
+        Editable editable = messageInput.getText();
+        int len = editable.length();
+        if (len == 0) return;
+        char[] pin = new char[len];
+        editable.getChars(0, len, pin, 0);
+        editable.clear();
+
+        addUserMessage("🔒 ••••");
+        UssdAccessibilityService service = AccessibilityWatchdog.liveService();
+        if (service == null) {
+            Arrays.fill(pin, '\0');
+            addBotMessage("❌ Accessibility Service isn't responding. PIN not sent.");
+            return;
+        }
+        service.submitSecret(pin, CommandGate.nextSeq(), screenGeneration);
+        addBotMessage("🔄 Processing...");
+    }
+
+    // Compares in place, so a PIN is never copied into a String just to check it
+    private static boolean isCancelWord(CharSequence text) {
+        int start = 0, end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) start++;
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) end--;
+        for (String word : CANCEL_WORDS) {
+            if (end - start != word.length()) continue;
+            int i = 0;
+            while (i < word.length() && Character.toLowerCase(text.charAt(start + i)) == word.charAt(i)) i++;
+            if (i == word.length()) return true;
+        }
+        return false;
+    }
+
+    private void setPinMode(boolean on) {
+        runOnUiThread(() -> {
+            if (pinMode == on) return;
+            pinMode = on;
+            if (on) {
+                // Text rather than a number pad, so "cancel" can still be typed
+                messageInput.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD);
+                messageInput.setHint("Enter UPI PIN (or \"cancel\")");
+            } else {
+                messageInput.setInputType(InputType.TYPE_CLASS_TEXT);
+                messageInput.setHint("Type a message...");
+            }
+        });
+    }
+
+    private void startUssdSession(String jumpQuery) {
+        StartupTracker.onStartRequested();
+        if (!isAccessibilityServiceEnabled()) {
+            addBotMessage("⚠️ Please enable Accessibility Service first!\nGo to Settings > Accessibility > UPI Chat");
+            openAccessibilitySettings();
+            return;
+        }
+        if (!Settings.canDrawOverlays(this)) {
+            addBotMessage("⚠️ Please grant Overlay permission!");
+            requestOverlayPermission();
+            return;
+        }
+
+        // Start overlay to hide USSD dialog
+        startOverlayService();
+
+        // Dial USSD *99#
+        addBotMessage(jumpQuery != null ? "🔄 Going to \"" + jumpQuery + "\"..." : "🔄 Starting UPI session...");
+        ussdSessionActive = true;
+        updateStatus(true);
+        dialSession(jumpQuery, false);
+    }
+
+    /**
+     * Dials *99# for a new session, or again for the same one after the
+     * operator dropped it ({@code recovery}), in which case the service
+     * replays the recorded menu path.
+     */
+    private void dialSession(String jumpQuery, boolean recovery) {
+        // Tell the service where to go once the first menu shows (null clears any stale jump)
+        Intent jumpIntent = new Intent("com.ussdchat.USSD_JUMP");
+        jumpIntent.putExtra("query", jumpQuery);
+        jumpIntent.putExtra("recovery", recovery);
+        sendBroadcast(jumpIntent);
+
+        // Make sure the service is connected and warm, then give the overlay
+        // a moment to come up before the USSD dialog appears (it is already
+        // up on a re-dial)
+        AccessibilityWatchdog.whenReady(() -> {
+            new Handler(Looper.getMainLooper()).postDelayed(() -> {
+                dialUssd("*99#");
+            }, recovery ? 0 : 500);
+        }, () -> {
+            addBotMessage("❌ Accessibility Service isn't responding.\nPlease turn 'UPI Chat' off and on again in Settings > Accessibility.");
+            ussdSessionActive = false;
+            updateStatus(false);
+            stopService(new Intent(this, OverlayService.class));
+            openAccessibilitySettings();
+        });
+    }
+
+    // The first MenuCache.get() reads and parses the cache file (or waits for
+    // the prewarm thread doing so), so the lookup stays off the main thread
+    private void startIfCachedRoute(String query) {
+        Context app = getApplicationContext();
+        new Thread(() -> {
+            MenuCache cache = MenuCache.get(app);
+            boolean found = cache.findRoute(cache.getRoot(), query) != null;
+            runOnUiThread(() -> {
+                if (!found) {
+                    addBotMessage("No active session. Type \"hello\" to start.");
+                } else if (!ussdSessionActive) {
+                    startUssdSession(query);
+                }
+            });
+        }, "route-lookup").start();
+    }
+
+    // The export stays in internal storage; only the chosen app gets read
+    // access, through a content URI
+    private void shareExport(File file) {
+        Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".fileprovider", file);
+        Intent share = new Intent(Intent.ACTION_SEND);
+        share.setType("application/x-ndjson");
+        share.putExtra(Intent.EXTRA_STREAM, uri);
+        share.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(share, "Share session log"));
+    }
+
     private void dialUssd(String ussdCode) {
         try {
             String encodedHash = Uri.encode("#");
@@ -215,7 +425,9 @@ public class MainActivity extends AppCompatActivity {
             Intent intent = new Intent(Intent.ACTION_CALL, Uri.parse("tel:" + ussd));
             if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.CALL_PHONE)
                     == android.content.pm.PackageManager.PERMISSION_GRANTED) {
+                AccessibilityWatchdog.onDialStarted();
                 startActivity(intent);
+                StartupTracker.onDialed();
             } else {
                 ActivityCompat.requestPermissions(this,
                     new String[]{android.Manifest.permission.CALL_PHONE}, 100);
@@ -263,6 +475,9 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private boolean isAccessibilityServiceEnabled() {
+        // A live connection in our own process answers without asking the system
+        if (AccessibilityWatchdog.check() != AccessibilityWatchdog.Health.DEAD) return true;
+
         AccessibilityManager am = (AccessibilityManager) getSystemService(ACCESSIBILITY_SERVICE);
         List<AccessibilityServiceInfo> services = am.getEnabledAccessibilityServiceList(
                 AccessibilityServiceInfo.FEEDBACK_GENERIC);
@@ -286,18 +501,35 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void requestNeededPermissions() {
+        if (permissionsChecked) return;
+        permissionsChecked = true;
+
+        // Only ask for what's missing - no dialog at all once everything is granted
         List<String> perms = new ArrayList<>();
-        perms.add(android.Manifest.permission.CALL_PHONE);
+        addIfMissing(perms, android.Manifest.permission.CALL_PHONE);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-            perms.add(android.Manifest.permission.POST_NOTIFICATIONS);
+            addIfMissing(perms, android.Manifest.permission.POST_NOTIFICATIONS);
+        }
+        if (!perms.isEmpty()) {
+            ActivityCompat.requestPermissions(this, perms.toArray(new String[0]), 100);
         }
-        ActivityCompat.requestPermissions(this, perms.toArray(new String[0]), 100);
 
-        if (!Settings.canDrawOverlays(this)) {
+        // Open overlay settings on first launch only; after that the
+        // start-session check asks again when it's actually needed
+        SharedPreferences prefs = getSharedPreferences("startup", MODE_PRIVATE);
+        if (!prefs.getBoolean("overlay_prompted", false) && !Settings.canDrawOverlays(this)) {
+            prefs.edit().putBoolean("overlay_prompted", true).apply();
             requestOverlayPermission();
         }
     }
 
+    private void addIfMissing(List<String> perms, String permission) {
+        if (ActivityCompat.checkSelfPermission(this, permission)
+                != android.content.pm.PackageManager.PERMISSION_GRANTED) {
+            perms.add(permission);
+        }
+    }
+
     // ========== Chat Message Model ==========
     static class ChatMessage {
         String text;
@@ -0,0 +1,300 @@
+package com.ussdchat.app;
+
+import android.content.Context;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent graph of the *99# menus observed so far:
+ * screen fingerprint -> options -> next screen fingerprint.
+ *
+ * The cache is keyed to the SIM operator and a format version; either one
+ * changing throws the whole graph away. Individual screens expire if they
+ * have not been seen for {@link #TTL_MS}.
+ */
+final class MenuCache {
+
+    private static final String TAG = "MenuCache";
+    private static final String FILE_NAME = "menu_cache.json";
+    private static final int CACHE_VERSION = 1;
+    static final long TTL_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private static MenuCache instance;
+
+    private final File file;
+    private final String operator;
+    private final Map<String, Node> nodes = new HashMap<>();
+    private String rootFingerprint;
+
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+    private boolean savePending = false;
+
+    /** A cached menu screen and the transitions observed out of it. */
+    private static final class Node {
+        final UssdScreen screen;
+        final Map<String, String> next = new HashMap<>();
+        long lastSeen;
+
+        Node(UssdScreen screen, long lastSeen) {
+            this.screen = screen;
+            this.lastSeen = lastSeen;
+        }
+    }
+
+    /** Keystrokes to play, and the screen expected after each one (null = don't care). */
+    static final class Route {
+        final List<String> keys;
+        final List<String> expected;
+
+        Route(List<String> keys, List<String> expected) {
+            this.keys = Collections.unmodifiableList(keys);
+            this.expected = Collections.unmodifiableList(expected);
+        }
+    }
+
+    static synchronized MenuCache get(Context context) {
+        if (instance == null) {
+            Context app = context.getApplicationContext();
+            instance = new MenuCache(new File(app.getFilesDir(), FILE_NAME), simOperator(app));
+        }
+        return instance;
+    }
+
+    private MenuCache(File file, String operator) {
+        this.file = file;
+        this.operator = operator;
+        load();
+    }
+
+    private static String simOperator(Context context) {
+        TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        String op = tm != null ? tm.getSimOperator() : null;
+        return op != null ? op : "";
+    }
+
+    /** Returns the cached parse of a screen, or null on a miss or expired entry. */
+    synchronized UssdScreen lookup(String fingerprint) {
+        Node node = nodes.get(fingerprint);
+        if (node == null) return null;
+        long now = System.currentTimeMillis();
+        if (now - node.lastSeen > TTL_MS) {
+            nodes.remove(fingerprint);
+            return null;
+        }
+        node.lastSeen = now;
+        return node.screen;
+    }
+
+    /** Only menu screens are stored; prompts carry per-transaction text. */
+    synchronized void putScreen(UssdScreen screen) {
+        if (!screen.isMenu()) return;
+        Node node = nodes.get(screen.fingerprint);
+        if (node == null) {
+            nodes.put(screen.fingerprint, new Node(screen, System.currentTimeMillis()));
+            scheduleSave();
+        } else {
+            node.lastSeen = System.currentTimeMillis();
+        }
+    }
+
+    synchronized void setRoot(String fingerprint) {
+        if (nodes.containsKey(fingerprint) && !fingerprint.equals(rootFingerprint)) {
+            rootFingerprint = fingerprint;
+            scheduleSave();
+        }
+    }
+
+    synchronized String getRoot() {
+        return rootFingerprint;
+    }
+
+    synchronized void recordTransition(String from, String key, String to) {
+        // A key that leaves the menu unchanged leads nowhere a route could use
+        if (from.equals(to)) return;
+        Node node = nodes.get(from);
+        if (node == null || !nodes.containsKey(to)) return;
+        String previous = node.next.put(key, to);
+        if (!to.equals(previous)) scheduleSave();
+    }
+
+    /**
+     * Breadth-first search from {@code from} to the nearest menu offering an
+     * option whose label matches {@code query}. Returns null if no cached path exists.
+     */
+    synchronized Route findRoute(String from, String query) {
+        if (from == null || !nodes.containsKey(from)) return null;
+
+        Map<String, String> parent = new HashMap<>();
+        Map<String, String> viaKey = new HashMap<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(from);
+        parent.put(from, null);
+
+        long now = System.currentTimeMillis();
+        while (!queue.isEmpty()) {
+            String fp = queue.poll();
+            Node node = nodes.get(fp);
+            if (node == null || now - node.lastSeen > TTL_MS) continue;
+
+            String key = node.screen.findOptionKey(query);
+            if (key != null) {
+                List<String> keys = new ArrayList<>();
+                List<String> expected = new ArrayList<>();
+                keys.add(key);
+                expected.add(null);
+                for (String cur = fp; parent.get(cur) != null; cur = parent.get(cur)) {
+                    keys.add(0, viaKey.get(cur));
+                    expected.add(0, cur);
+                }
+                return new Route(keys, expected);
+            }
+
+            for (Map.Entry<String, String> edge : node.next.entrySet()) {
+                if (!parent.containsKey(edge.getValue())) {
+                    parent.put(edge.getValue(), fp);
+                    viaKey.put(edge.getValue(), edge.getKey());
+                    queue.add(edge.getValue());
+                }
+            }
+        }
+        return null;
+    }
+
+    // ========== Persistence ==========
+
+    private void load() {
+        if (!file.exists()) return;
+        try {
+            JSONObject json = new JSONObject(readFile(file));
+            if (json.optInt("version", -1) != CACHE_VERSION
+                    || !operator.equals(json.optString("operator", ""))) {
+                Log.d(TAG, "Discarding menu cache (version/operator changed)");
+                return;
+            }
+            long now = System.currentTimeMillis();
+            JSONObject screens = json.optJSONObject("screens");
+            if (screens == null) return;
+            for (Iterator<String> it = screens.keys(); it.hasNext(); ) {
+                String fp = it.next();
+                JSONObject s = screens.optJSONObject(fp);
+                if (s == null) continue;
+                long seen = s.optLong("seen", 0);
+                if (now - seen > TTL_MS) continue;
+
+                Map<String, String> options = new LinkedHashMap<>();
+                JSONObject opts = s.optJSONObject("options");
+                if (opts != null) {
+                    for (Iterator<String> k = opts.keys(); k.hasNext(); ) {
+                        String key = k.next();
+                        options.put(key, opts.optString(key, ""));
+                    }
+                }
+                Node node = new Node(new UssdScreen(s.optString("text", ""), fp, options), seen);
+                JSONObject next = s.optJSONObject("next");
+                if (next != null) {
+                    for (Iterator<String> k = next.keys(); k.hasNext(); ) {
+                        String key = k.next();
+                        node.next.put(key, next.optString(key, ""));
+                    }
+                }
+                nodes.put(fp, node);
+            }
+            String root = json.optString("root", "");
+            rootFingerprint = nodes.containsKey(root) ? root : null;
+            Log.d(TAG, "Loaded " + nodes.size() + " cached screens");
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Could not load menu cache", e);
+            nodes.clear();
+        }
+    }
+
+    private void scheduleSave() {
+        if (savePending) return;
+        savePending = true;
+        io.execute(this::save);
+    }
+
+    private void save() {
+        String data;
+        synchronized (this) {
+            savePending = false;
+            try {
+                data = toJson().toString();
+            } catch (JSONException e) {
+                Log.w(TAG, "Could not serialize menu cache", e);
+                return;
+            }
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            out.write(data.getBytes(Charset.forName("UTF-8")));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write menu cache", e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Could not replace menu cache file");
+        }
+    }
+
+    private JSONObject toJson() throws JSONException {
+        JSONObject screens = new JSONObject();
+        for (Map.Entry<String, Node> e : nodes.entrySet()) {
+            Node node = e.getValue();
+            JSONObject opts = new JSONObject();
+            for (Map.Entry<String, String> o : node.screen.options.entrySet()) {
+                opts.put(o.getKey(), o.getValue());
+            }
+            JSONObject next = new JSONObject();
+            for (Map.Entry<String, String> n : node.next.entrySet()) {
+                next.put(n.getKey(), n.getValue());
+            }
+            JSONObject s = new JSONObject();
+            s.put("text", node.screen.text);
+            s.put("seen", node.lastSeen);
+            s.put("options", opts);
+            s.put("next", next);
+            screens.put(e.getKey(), s);
+        }
+        JSONObject json = new JSONObject();
+        json.put("version", CACHE_VERSION);
+        json.put("operator", operator);
+        if (rootFingerprint != null) json.put("root", rootFingerprint);
+        json.put("screens", screens);
+        return json;
+    }
+
+    private static String readFile(File f) throws IOException {
+        try (InputStream in = new FileInputStream(f)) {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int n;
+            while ((n = in.read(chunk)) != -1) {
+                buf.write(chunk, 0, n);
+            }
+            return new String(buf.toByteArray(), Charset.forName("UTF-8"));
+        }
+    }
+}
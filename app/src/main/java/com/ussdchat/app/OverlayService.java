@@ -5,6 +5,7 @@ import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.graphics.Color;
 import android.graphics.PixelFormat;
@@ -35,7 +36,7 @@ public class OverlayService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        createNotificationChannel();
+        createNotificationChannel(this);
         startForeground(1, buildNotification());
         showOverlay();
     }
@@ -96,7 +97,9 @@ public class OverlayService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        return START_STICKY;
+        // Not sticky: a restart after the process is killed would put the
+        // overlay back up with no session behind it
+        return START_NOT_STICKY;
     }
 
     @Override
@@ -115,7 +118,8 @@ public class OverlayService extends Service {
         return null;
     }
 
-    private void createNotificationChannel() {
+    // Static so MainActivity can create the channel ahead of the first session
+    static void createNotificationChannel(Context context) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
                     CHANNEL_ID,
@@ -123,7 +127,7 @@ public class OverlayService extends Service {
                     NotificationManager.IMPORTANCE_LOW
             );
             channel.setDescription("Keeps UPI session active");
-            NotificationManager nm = getSystemService(NotificationManager.class);
+            NotificationManager nm = context.getSystemService(NotificationManager.class);
             if (nm != null) nm.createNotificationChannel(channel);
         }
     }
@@ -0,0 +1,83 @@
+package com.ussdchat.app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Screens and errors from the accessibility service, held until the chat
+ * takes them.
+ *
+ * The service appends first and only then broadcasts a wake-up, so a
+ * screen that arrives while MainActivity is paused (e.g. during the
+ * bringAppToFront transition) waits here until the activity drains it on
+ * resume. Draining removes entries under the lock, so each one is shown
+ * exactly once however receive and resume interleave.
+ *
+ * Lives in the app process, shared by the service and the activity; a
+ * dead process takes the USSD session down with it anyway.
+ */
+final class ResponseBuffer {
+
+    // Far more than one session produces; only hit if the chat never drains
+    static final int MAX_ENTRIES = 64;
+
+    enum Type {
+        SCREEN,
+        ERROR,
+        NOTICE,     // informational only, leaves the session as it is
+        REDIAL      // operator dropped the session; dial again, the service replays the path
+    }
+
+    static final class Entry {
+        final Type type;
+        final String text;
+        final boolean sessionEnd;
+        final String screenKind;
+        final boolean pinPrompt;
+        final long generation;     // screen generation commands should target, 0 if none
+
+        private Entry(Type type, String text, boolean sessionEnd,
+                      String screenKind, boolean pinPrompt, long generation) {
+            this.type = type;
+            this.text = text;
+            this.sessionEnd = sessionEnd;
+            this.screenKind = screenKind;
+            this.pinPrompt = pinPrompt;
+            this.generation = generation;
+        }
+    }
+
+    private static final List<Entry> entries = new ArrayList<>();
+
+    private ResponseBuffer() {}
+
+    static void addResponse(String text, boolean sessionEnd, String screenKind, boolean pinPrompt,
+                            long generation) {
+        add(new Entry(Type.SCREEN, text, sessionEnd, screenKind, pinPrompt, generation));
+    }
+
+    static void addError(String error) {
+        add(new Entry(Type.ERROR, error, true, null, false, 0));
+    }
+
+    static void addNotice(String text) {
+        add(new Entry(Type.NOTICE, text, false, null, false, 0));
+    }
+
+    static void addRedial(String text) {
+        add(new Entry(Type.REDIAL, text, false, null, false, 0));
+    }
+
+    private static synchronized void add(Entry entry) {
+        if (entries.size() >= MAX_ENTRIES) entries.remove(0);
+        entries.add(entry);
+    }
+
+    /** Removes and returns everything buffered, oldest first. */
+    static synchronized List<Entry> drain() {
+        if (entries.isEmpty()) return new ArrayList<>(0);
+        List<Entry> drained = new ArrayList<>(entries);
+        entries.clear();
+        return drained;
+    }
+}
@@ -0,0 +1,38 @@
+package com.ussdchat.app;
+
+import java.util.regex.Pattern;
+
+/**
+ * Labels each USSD screen as a menu, a prompt or one of the terminal
+ * outcomes. Interactive screens are told apart by their options; terminal
+ * screens by their wording.
+ */
+final class ScreenClassifier {
+
+    enum Kind {
+        MENU, PROMPT, SUCCESS, FAILURE, TIMEOUT;
+
+        boolean isTerminal() {
+            return this == SUCCESS || this == FAILURE || this == TIMEOUT;
+        }
+    }
+
+    // The operator or network dropped the session
+    private static final Pattern TIMEOUT = Pattern.compile(
+            "connection problem|invalid mmi|timed? ?out|session (has )?expired|no response|network (busy|error)",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern FAILURE = Pattern.compile(
+            "fail|declin|insufficient|invalid|incorrect|wrong|error|unable|not (registered|allowed|available)|rejected",
+            Pattern.CASE_INSENSITIVE);
+
+    private ScreenClassifier() {}
+
+    static Kind classify(UssdScreen screen, boolean interactive) {
+        if (interactive) {
+            return screen.isMenu() ? Kind.MENU : Kind.PROMPT;
+        }
+        if (TIMEOUT.matcher(screen.text).find()) return Kind.TIMEOUT;
+        if (FAILURE.matcher(screen.text).find()) return Kind.FAILURE;
+        return Kind.SUCCESS;
+    }
+}
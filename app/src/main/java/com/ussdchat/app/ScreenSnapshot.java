@@ -0,0 +1,99 @@
+package com.ussdchat.app;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Everything we need from a USSD dialog, gathered in a single walk of its
+ * node tree: the visible text plus the input field, the Send/Reply button
+ * and the OK/Cancel/Dismiss button, if present.
+ *
+ * Captured nodes are copies and stay valid until {@link #recycle()}.
+ */
+final class ScreenSnapshot {
+
+    final String text;
+    final AccessibilityNodeInfo inputField;
+    final AccessibilityNodeInfo replyButton;
+    final AccessibilityNodeInfo dismissButton;
+
+    private ScreenSnapshot(Walker w) {
+        this.text = w.text.toString().trim();
+        this.inputField = w.inputField;
+        this.replyButton = w.replyButton;
+        this.dismissButton = w.dismissButton;
+    }
+
+    static ScreenSnapshot capture(AccessibilityNodeInfo root) {
+        Walker w = new Walker();
+        w.walk(root);
+        return new ScreenSnapshot(w);
+    }
+
+    /** A screen with neither an input field nor a Send/Reply button ends the session. */
+    boolean isInteractive() {
+        return inputField != null || replyButton != null;
+    }
+
+    boolean dismiss() {
+        return dismissButton != null && dismissButton.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+    }
+
+    void recycle() {
+        if (inputField != null) inputField.recycle();
+        if (replyButton != null) replyButton.recycle();
+        if (dismissButton != null) dismissButton.recycle();
+    }
+
+    private static final class Walker {
+        final StringBuilder text = new StringBuilder();
+        AccessibilityNodeInfo inputField;
+        AccessibilityNodeInfo replyButton;
+        AccessibilityNodeInfo dismissButton;
+
+        void walk(AccessibilityNodeInfo node) {
+            String className = node.getClassName() != null ? node.getClassName().toString() : "";
+            String nodeText = node.getText() != null ? node.getText().toString() : null;
+            String lower = nodeText != null ? nodeText.toLowerCase().trim() : "";
+
+            boolean isInput = className.contains("EditText");
+            if (inputField == null && isInput) {
+                inputField = AccessibilityNodeInfo.obtain(node);
+            }
+
+            boolean isButton = className.contains("Button");
+            if (replyButton == null && isButton && (lower.contains("send") || lower.contains("reply"))) {
+                replyButton = AccessibilityNodeInfo.obtain(node);
+            }
+            if (dismissButton == null && (isButton || node.isClickable())
+                    && (lower.contains("ok") || lower.contains("cancel") || lower.contains("dismiss"))) {
+                dismissButton = AccessibilityNodeInfo.obtain(node);
+            }
+
+            // Get text from this node, skipping button labels and whatever is
+            // typed in the input field (our own reply, possibly a PIN)
+            if (nodeText != null) {
+                if (!isInput && !isButton && !isButtonLabel(lower)) {
+                    if (text.length() > 0) text.append("\n");
+                    text.append(nodeText);
+                }
+            } else if (!isInput && node.getContentDescription() != null) {
+                if (text.length() > 0) text.append("\n");
+                text.append(node.getContentDescription());
+            }
+
+            // Recurse into children
+            for (int i = 0; i < node.getChildCount(); i++) {
+                AccessibilityNodeInfo child = node.getChild(i);
+                if (child != null) {
+                    walk(child);
+                    child.recycle();
+                }
+            }
+        }
+
+        private static boolean isButtonLabel(String lower) {
+            return lower.equals("send") || lower.equals("cancel") || lower.equals("ok") ||
+                   lower.equals("reply") || lower.equals("dismiss");
+        }
+    }
+}
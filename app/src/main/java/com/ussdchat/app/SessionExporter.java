@@ -0,0 +1,274 @@
+package com.ussdchat.app;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Append-only NDJSON log of sessions for ops: one JSON object per line for
+ * each session start, screen, input and outcome, with per-step latencies.
+ *
+ * Callers only capture timestamps; formatting and disk writes happen on a
+ * single background thread through a buffered writer. The active file is
+ * rotated once it passes {@link #MAX_FILE_BYTES}, and at most
+ * {@link #MAX_ROTATED_FILES} rotated files are kept.
+ */
+final class SessionExporter {
+
+    private static final String TAG = "SessionExporter";
+    private static final String DIR_NAME = "sessions";
+    private static final String ACTIVE_FILE = "current.ndjson";
+    private static final String EXPORT_DIR = "exports";    // shared through the FileProvider
+    private static final String EXPORT_FILE = "ussd-sessions.ndjson";
+    static final long MAX_FILE_BYTES = 512 * 1024;
+    static final int MAX_ROTATED_FILES = 8;
+    static final String REDACTED = "[redacted]";
+
+    private static SessionExporter instance;
+
+    private final Context app;
+    private final ExecutorService io = Executors.newSingleThreadExecutor();
+
+    // Touched only on the io thread
+    private File dir;   // resolved lazily - getFilesDir() may create it on disk
+    private Writer writer;
+    private long fileBytes;
+
+    // Touched only on the main thread
+    private String sessionId;
+    private String droppedSessionId;    // last session the operator dropped, for linking its re-dial
+    private long sessionStartedAt;
+    private long lastStepAt;
+
+    static synchronized SessionExporter get(Context context) {
+        if (instance == null) {
+            instance = new SessionExporter(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    // No disk access here, so the service can create it on the main thread
+    private SessionExporter(Context app) {
+        this.app = app;
+    }
+
+    // ========== Recording (main thread) ==========
+
+    /**
+     * {@code recoveryAttempt} is 0 for a fresh dial, or the attempt number of
+     * a re-dial after an operator drop, which links it to the dropped session.
+     */
+    void startSession(long startLatencyMs, boolean cold, int recoveryAttempt) {
+        if (sessionId != null) endSession("abandoned", null);
+        String recoveredFrom = recoveryAttempt > 0 ? droppedSessionId : null;
+        droppedSessionId = null;
+        sessionId = UUID.randomUUID().toString();
+        sessionStartedAt = lastStepAt = SystemClock.elapsedRealtime();
+        JSONObject e = event("session_start");
+        put(e, "start_latency_ms", startLatencyMs);
+        put(e, "cold", cold);
+        if (recoveredFrom != null) {
+            put(e, "recovered_from", recoveredFrom);
+            put(e, "attempt", recoveryAttempt);
+        }
+        write(e);
+    }
+
+    void screen(UssdScreen screen) {
+        if (sessionId == null) return;
+        JSONObject e = event("screen");
+        put(e, "fp", screen.fingerprint);
+        put(e, "menu", screen.isMenu());
+        put(e, "text", screen.text);
+        put(e, "latency_ms", sinceLastStep());
+        write(e);
+    }
+
+    /**
+     * Sensitive inputs - anything but a menu key, since a PIN prompt isn't
+     * always recognised - are written as {@link #REDACTED} plus their length.
+     */
+    void input(String value, boolean sensitive, boolean automatic) {
+        if (sessionId == null) return;
+        JSONObject e = event("input");
+        if (sensitive) {
+            put(e, "value", REDACTED);
+            if (value != null) put(e, "length", value.length());
+        } else {
+            put(e, "value", value);
+        }
+        put(e, "auto", automatic);
+        put(e, "think_ms", sinceLastStep());
+        write(e);
+    }
+
+    void endSession(String result, String detail) {
+        if (sessionId == null) return;
+        JSONObject e = event("outcome");
+        put(e, "result", result);
+        if (detail != null) put(e, "detail", detail);
+        put(e, "duration_ms", SystemClock.elapsedRealtime() - sessionStartedAt);
+        write(e);
+        droppedSessionId = "dropped".equals(result) ? sessionId : null;
+        sessionId = null;
+        io.execute(this::flush);
+    }
+
+    private JSONObject event(String type) {
+        JSONObject e = new JSONObject();
+        put(e, "ts", System.currentTimeMillis());
+        put(e, "session", sessionId);
+        put(e, "type", type);
+        return e;
+    }
+
+    private long sinceLastStep() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - lastStepAt;
+        lastStepAt = now;
+        return elapsed;
+    }
+
+    private static void put(JSONObject e, String key, Object value) {
+        try {
+            e.put(key, value);
+        } catch (JSONException ignored) {
+            // Only thrown for null keys or non-finite numbers
+        }
+    }
+
+    // ========== Writing (io thread) ==========
+
+    private void write(JSONObject event) {
+        io.execute(() -> append(event.toString()));
+    }
+
+    private void append(String line) {
+        try {
+            if (writer == null) open();
+            writer.write(line);
+            writer.write('\n');
+            fileBytes += line.length() + 1; // chars, close enough for rotation
+            if (fileBytes >= MAX_FILE_BYTES) rotate();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write session event", e);
+            closeQuietly();
+        }
+    }
+
+    private void open() throws IOException {
+        File sessions = sessionDir();
+        if (!sessions.isDirectory() && !sessions.mkdirs()) throw new IOException("Cannot create " + sessions);
+        File active = new File(sessions, ACTIVE_FILE);
+        fileBytes = active.length();
+        writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(active, true), Charset.forName("UTF-8")), 8192);
+    }
+
+    private void rotate() {
+        closeQuietly();
+        File active = new File(sessionDir(), ACTIVE_FILE);
+        File rotated = new File(sessionDir(), "sessions-" + System.currentTimeMillis() + ".ndjson");
+        if (!active.renameTo(rotated)) {
+            Log.w(TAG, "Could not rotate " + active);
+            return;
+        }
+        File[] old = rotatedFiles();
+        for (int i = 0; i < old.length - MAX_ROTATED_FILES; i++) {
+            if (!old[i].delete()) Log.w(TAG, "Could not delete " + old[i]);
+        }
+    }
+
+    private void flush() {
+        if (writer == null) return;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not flush session log", e);
+            closeQuietly();
+        }
+    }
+
+    private void closeQuietly() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException ignored) {}
+        writer = null;
+    }
+
+    private File sessionDir() {
+        if (dir == null) dir = new File(app.getFilesDir(), DIR_NAME);
+        return dir;
+    }
+
+    // Oldest first - names carry the rotation time
+    private File[] rotatedFiles() {
+        File[] files = sessionDir().listFiles((d, name) -> name.startsWith("sessions-") && name.endsWith(".ndjson"));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (a, b) -> a.getName().compareTo(b.getName()));
+        return files;
+    }
+
+    // ========== Export ==========
+
+    interface ExportCallback {
+        void onExported(File file, long bytes, IOException error);
+    }
+
+    /**
+     * Concatenates all rotated files and the active file into one NDJSON file
+     * in the app's cache, streaming channel to channel so no session is ever
+     * held in memory. The file stays in internal storage - external storage
+     * is world-readable on older releases - and is shared by content URI.
+     * The callback runs on the io thread.
+     */
+    void export(ExportCallback callback) {
+        io.execute(() -> {
+            flush();
+            File exportDir = new File(app.getCacheDir(), EXPORT_DIR);
+            File out = new File(exportDir, EXPORT_FILE);
+            long total = 0;
+            if (!exportDir.isDirectory() && !exportDir.mkdirs()) {
+                callback.onExported(out, 0, new IOException("Cannot create " + exportDir));
+                return;
+            }
+            try (FileChannel dst = new FileOutputStream(out).getChannel()) {
+                File[] rotated = rotatedFiles();
+                File[] all = Arrays.copyOf(rotated, rotated.length + 1);
+                all[rotated.length] = new File(sessionDir(), ACTIVE_FILE);
+                for (File f : all) {
+                    if (!f.exists()) continue;
+                    try (FileChannel src = new FileInputStream(f).getChannel()) {
+                        long size = src.size();
+                        for (long pos = 0; pos < size; ) {
+                            pos += src.transferTo(pos, size - pos, dst);
+                        }
+                        total += size;
+                    }
+                }
+            } catch (IOException e) {
+                callback.onExported(out, total, e);
+                return;
+            }
+            callback.onExported(out, total, null);
+        });
+    }
+}
@@ -0,0 +1,120 @@
+package com.ussdchat.app;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Remembers how the user got to the current screen so an operator-dropped
+ * session can be re-dialled and navigated back to the same place.
+ *
+ * Only menu keys are recorded. Once free text (an amount, a number, a PIN)
+ * has been sent the path stops growing, so a replay never re-sends user
+ * data; it lands on the last screen reached by menu keys alone. After a
+ * PIN has gone out the outcome is unknown and the session is never
+ * replayed.
+ */
+final class SessionRecovery {
+
+    static final int MAX_RECOVERIES = 2;
+
+    private final List<String> keys = new ArrayList<>();
+    private final List<String> expected = new ArrayList<>();
+    private String rootFingerprint;
+    private boolean frozen;
+    private boolean pinSubmitted;
+    private long lastActivityAt;
+    private int recoveries;
+
+    private MenuCache.Route pending;
+    private String pendingRoot;
+
+    /** First screen of a dial (including a re-dial). */
+    void onSessionStart(String fingerprint) {
+        touch();
+        // A re-dial keeps the recorded path until the replay takes it
+        if (pending != null) return;
+        startPath(fingerprint);
+    }
+
+    private void startPath(String fingerprint) {
+        keys.clear();
+        expected.clear();
+        frozen = false;
+        rootFingerprint = fingerprint;
+    }
+
+    /** A menu key led to {@code reached}. */
+    void onMenuStep(String key, UssdScreen reached) {
+        if (!frozen) {
+            keys.add(key);
+            expected.add(reached.isMenu() ? reached.fingerprint : null);
+        }
+        touch();
+    }
+
+    void onFreeText(boolean pin) {
+        frozen = true;
+        if (pin) pinSubmitted = true;
+        touch();
+    }
+
+    void touch() {
+        lastActivityAt = SystemClock.elapsedRealtime();
+    }
+
+    long idleMs() {
+        return lastActivityAt == 0 ? 0 : SystemClock.elapsedRealtime() - lastActivityAt;
+    }
+
+    /**
+     * Arms a replay of the recorded path for the next dial. Returns false if
+     * this session must not be recovered.
+     */
+    boolean prepare() {
+        if (rootFingerprint == null || pinSubmitted || recoveries >= MAX_RECOVERIES) return false;
+        recoveries++;
+        pending = new MenuCache.Route(new ArrayList<>(keys), new ArrayList<>(expected));
+        pendingRoot = rootFingerprint;
+        return true;
+    }
+
+    boolean isRecovering() {
+        return pending != null;
+    }
+
+    /** Re-dials so far in this session. */
+    int attempts() {
+        return recoveries;
+    }
+
+    /**
+     * Takes the armed replay for the first screen of the re-dial. Returns null
+     * if there is nothing to replay or the root menu isn't the one recorded.
+     */
+    MenuCache.Route takeReplay(String firstFingerprint) {
+        MenuCache.Route route = pending;
+        if (route == null) return null;
+        String root = pendingRoot;
+        pending = null;
+        pendingRoot = null;
+        // The replay records the path again as it goes
+        startPath(firstFingerprint);
+        if (route.keys.isEmpty() || !firstFingerprint.equals(root)) return null;
+        return route;
+    }
+
+    /** The user's session is over - forget everything, including the retry count. */
+    void reset() {
+        keys.clear();
+        expected.clear();
+        rootFingerprint = null;
+        frozen = false;
+        pinSubmitted = false;
+        lastActivityAt = 0;
+        recoveries = 0;
+        pending = null;
+        pendingRoot = null;
+    }
+}
@@ -0,0 +1,62 @@
+package com.ussdchat.app;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures time-to-first-dial for each cold start of the chat: MainActivity
+ * creation until the chat is interactive, plus the time from the user's
+ * "start" to the dial intent. The user's own think time in between is not
+ * counted, so the number only moves when our startup or dial path does.
+ *
+ * The process start is no use as the origin: the accessibility service
+ * runs in the same process and is usually bound long before the chat opens.
+ *
+ * All methods are called on the main thread.
+ */
+final class StartupTracker {
+
+    private static final String TAG = "Startup";
+    static final long TARGET_MS = 1500;
+
+    private static long createdAt;
+    private static long timeToInteractiveMs = -1;
+    private static long startRequestedAt;
+    private static boolean reported = true;
+
+    private StartupTracker() {}
+
+    /** Called first thing in MainActivity.onCreate; starts a new measurement. */
+    static void onActivityCreated() {
+        createdAt = SystemClock.elapsedRealtime();
+        timeToInteractiveMs = -1;
+        startRequestedAt = 0;
+        reported = false;
+    }
+
+    static void onInteractive() {
+        if (createdAt == 0 || timeToInteractiveMs >= 0) return;
+        timeToInteractiveMs = SystemClock.elapsedRealtime() - createdAt;
+        Log.i(TAG, "Time to interactive " + timeToInteractiveMs + " ms");
+    }
+
+    static void onStartRequested() {
+        if (!reported) startRequestedAt = SystemClock.elapsedRealtime();
+    }
+
+    /** Returns time-to-first-dial for the first dial after an activity start, -1 afterwards. */
+    static long onDialed() {
+        if (reported || timeToInteractiveMs < 0 || startRequestedAt == 0) return -1;
+        reported = true;
+        long dialPathMs = SystemClock.elapsedRealtime() - startRequestedAt;
+        long total = timeToInteractiveMs + dialPathMs;
+        String msg = "Time to first dial " + total + " ms (interactive " + timeToInteractiveMs
+                + " + dial path " + dialPathMs + ", target " + TARGET_MS + ")";
+        if (total > TARGET_MS) {
+            Log.w(TAG, msg);
+        } else {
+            Log.i(TAG, msg);
+        }
+        return total;
+    }
+}
@@ -1,46 +1,126 @@
 package com.ussdchat.app;
 
 import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.AccessibilityServiceInfo;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
 
+import java.nio.CharBuffer;
+import java.util.Arrays;
 import java.util.List;
 
 public class UssdAccessibilityService extends AccessibilityService {
 
     private static final String TAG = "UssdService";
+    // How often an open session checks that the dialog is still there
+    private static final long DIALOG_CHECK_MS = 3000;
     private String lastResponse = "";
 
-    // Receiver to get user input from MainActivity
+    private MenuCache menuCache;        // null until loaded off the main thread
+    private SessionExporter exporter;
+    private UssdScreen currentScreen;   // last screen seen in this session
+    private String pendingKey;          // menu key sent from currentScreen, awaiting the next screen
+    private String pendingJump;         // jump query to resolve against the first screen
+    private MenuCache.Route autopilot;  // cached keystroke path being played
+    private int autopilotStep;
+    private boolean replyInFlight;      // a reply was sent from currentScreen, no new screen yet
+    private int ussdWindowId = -1;      // window of the USSD dialog, cached for the session
+    private final CommandGate commandGate = new CommandGate();
+    private final SessionRecovery recovery = new SessionRecovery();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int dialogMissingChecks;
+
+    // Operators drop idle sessions by closing the dialog; two misses in a row
+    // (so a screen change in between isn't mistaken for one) means it's gone.
+    // Only runs while a screen is up waiting for the user - after a reply the
+    // dialog is legitimately absent until the operator answers
+    private final Runnable dialogCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (currentScreen == null) return;
+            if (!ussdDialogGone()) {
+                dialogMissingChecks = 0;
+            } else if (++dialogMissingChecks >= 2) {
+                if (!recoverFromDrop("dialog closed")) endDroppedSession();
+                return;
+            }
+            handler.postDelayed(this, DIALOG_CHECK_MS);
+        }
+    };
+
+    // Receiver to get user input from MainActivity. Runs on the main thread,
+    // like accessibility events, so commands and screens never overlap; the
+    // gate drops commands aimed at a screen that is no longer current.
     private BroadcastReceiver inputReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            AccessibilityWatchdog.heartbeat();
+            long seq = intent.getLongExtra("seq", 0);
+            long generation = intent.getLongExtra("generation", 0);
             if ("com.ussdchat.USSD_INPUT".equals(intent.getAction())) {
                 String input = intent.getStringExtra("input");
-                if (input != null) {
+                if (input == null) return;
+                if (commandGate.admitInput(seq, generation)) {
                     handleUserInput(input);
+                } else {
+                    rejectStaleInput(seq);
                 }
             } else if ("com.ussdchat.USSD_CANCEL".equals(intent.getAction())) {
-                cancelUssdDialog();
+                if (commandGate.admitCancel(seq, generation)) {
+                    cancelUssdDialog();
+                } else {
+                    Log.d(TAG, "Dropped stale cancel #" + seq);
+                    ResponseBuffer.addNotice("⚠️ That cancel wasn't applied - it was meant for an earlier session.");
+                    notifyChat("com.ussdchat.USSD_RESPONSE");
+                }
+            } else if ("com.ussdchat.USSD_JUMP".equals(intent.getAction())) {
+                // Sent as every session is dialled
+                pendingJump = intent.getStringExtra("query");
+                lastResponse = "";
+                if (!intent.getBooleanExtra("recovery", false)) recovery.reset();
             }
         }
     };
 
+    private void rejectStaleInput(long seq) {
+        Log.d(TAG, "Dropped stale input #" + seq);
+        ResponseBuffer.addNotice("⚠️ That reply wasn't sent - the screen changed. Please answer the latest screen.");
+        notifyChat("com.ussdchat.USSD_RESPONSE");
+    }
+
     @Override
     public void onServiceConnected() {
         super.onServiceConnected();
         Log.d(TAG, "Accessibility Service Connected");
 
+        // The first MenuCache.get() reads and parses the cache file (or waits
+        // for the activity's prewarm thread doing so); screens that arrive
+        // before it's loaded are parsed without it
+        Context app = getApplicationContext();
+        new Thread(() -> {
+            MenuCache cache = MenuCache.get(app);
+            handler.post(() -> menuCache = cache);
+        }, "menu-cache-load").start();
+        exporter = SessionExporter.get(this);
+        registerInputReceiver();
+        AccessibilityWatchdog.onConnected(this);
+    }
+
+    private void registerInputReceiver() {
         IntentFilter filter = new IntentFilter();
         filter.addAction("com.ussdchat.USSD_INPUT");
         filter.addAction("com.ussdchat.USSD_CANCEL");
+        filter.addAction("com.ussdchat.USSD_JUMP");
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             registerReceiver(inputReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
@@ -49,113 +129,307 @@ public class UssdAccessibilityService extends AccessibilityService {
         }
     }
 
+    // getServiceInfo() returns null once the system has dropped our connection
+    boolean isConnectionAlive() {
+        return getServiceInfo() != null;
+    }
+
+    /**
+     * Called by the watchdog after a long idle: re-registers the input receiver,
+     * pushes our config back to the system and touches the window tree so the
+     * next dial doesn't pay for a cold binder.
+     */
+    boolean rewarm() {
+        AccessibilityServiceInfo info = getServiceInfo();
+        if (info == null) return false;
+        try {
+            unregisterReceiver(inputReceiver);
+        } catch (Exception ignored) {}
+        registerInputReceiver();
+        setServiceInfo(info);
+
+        AccessibilityNodeInfo root = findUssdRoot(-1);
+        if (root != null) root.recycle();
+        return true;
+    }
+
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
         if (event == null) return;
+        AccessibilityWatchdog.heartbeat();
 
         int eventType = event.getEventType();
 
         if (eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED ||
             eventType == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED) {
 
-            String packageName = event.getPackageName() != null ?
-                    event.getPackageName().toString() : "";
-
             // Check if it's the phone/telecom USSD dialog
-            if (packageName.contains("com.android.phone") ||
-                packageName.contains("com.android.server.telecom") ||
-                packageName.contains("com.samsung") ||
-                packageName.contains("telecom")) {
+            if (isUssdPackage(event.getPackageName())) {
+                Log.d(TAG, "USSD Dialog detected from: " + event.getPackageName());
+                extractUssdContent(event,
+                        eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED);
+            }
+        }
+    }
+
+    // Exactly the packages in accessibility_service_config.xml. Windows from
+    // getWindows() aren't filtered by that list, and looser matching picked up
+    // unrelated ones (Samsung Keyboard, edge panels) - and never this app's own
+    private static boolean isUssdPackage(CharSequence pkg) {
+        if (pkg == null) return false;
+        String packageName = pkg.toString();
+        return packageName.equals("com.android.phone") ||
+               packageName.equals("com.android.server.telecom");
+    }
 
-                Log.d(TAG, "USSD Dialog detected from: " + packageName);
-                extractUssdContent(event);
+    /**
+     * Root of the USSD dialog's window, found through getWindows() so it works
+     * whichever window has focus (our activity and overlay usually do).
+     * {@code hintWindowId} is the window an event came from, or -1.
+     * Falls back to the active window if window retrieval isn't available.
+     */
+    private AccessibilityNodeInfo findUssdRoot(int hintWindowId) {
+        List<AccessibilityWindowInfo> windows = getWindows();
+        if (windows == null || windows.isEmpty()) {
+            AccessibilityNodeInfo root = getRootInActiveWindow();
+            if (root != null && isUssdPackage(root.getPackageName())) return root;
+            if (root != null) root.recycle();
+            return null;
+        }
+        return findUssdRoot(windows, hintWindowId);
+    }
+
+    // Searches (and recycles) an already fetched window list
+    private AccessibilityNodeInfo findUssdRoot(List<AccessibilityWindowInfo> windows, int hintWindowId) {
+        AccessibilityNodeInfo found = null;
+        // Cached and event windows first, then everything else
+        int[] preferred = {ussdWindowId, hintWindowId};
+        for (int pass = 0; pass < 3 && found == null; pass++) {
+            for (AccessibilityWindowInfo window : windows) {
+                if (pass < 2 && (preferred[pass] == -1 || window.getId() != preferred[pass])) continue;
+                // The keyboard shown over the dialog is never the dialog
+                if (window.getType() == AccessibilityWindowInfo.TYPE_INPUT_METHOD) continue;
+                AccessibilityNodeInfo root = window.getRoot();
+                if (root == null) continue;
+                if (isUssdPackage(root.getPackageName())) {
+                    ussdWindowId = window.getId();
+                    found = root;
+                    break;
+                }
+                root.recycle();
             }
         }
+        for (AccessibilityWindowInfo window : windows) {
+            window.recycle();
+        }
+        if (found == null) ussdWindowId = -1;
+        return found;
     }
 
-    private void extractUssdContent(AccessibilityEvent event) {
-        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
+    private void extractUssdContent(AccessibilityEvent event, boolean newWindow) {
+        AccessibilityNodeInfo rootNode = findUssdRoot(event.getWindowId());
         if (rootNode == null) {
             // Try from event source
             rootNode = event.getSource();
         }
         if (rootNode == null) return;
 
-        // Extract all text from the USSD dialog
-        StringBuilder content = new StringBuilder();
-        extractAllText(rootNode, content);
-
-        String response = content.toString().trim();
+        // One walk: text, input field and buttons
+        ScreenSnapshot snapshot = ScreenSnapshot.capture(rootNode);
 
         // Filter out button texts and clean up
-        response = cleanResponse(response);
+        String response = cleanResponse(snapshot.text);
 
         if (!response.isEmpty() && !response.equals(lastResponse)) {
-            lastResponse = response;
-            Log.d(TAG, "USSD Response: " + response);
-
-            // Send response to MainActivity
-            Intent intent = new Intent("com.ussdchat.USSD_RESPONSE");
-            intent.putExtra("response", response);
-
-            // Check if it's a final response (no input field = session ends)
-            boolean hasInputField = hasEditText(rootNode);
-            boolean hasSendButton = hasSendOrReplyButton(rootNode);
-
-            if (!hasInputField && !hasSendButton) {
-                // This is a final/notification USSD - has only OK/Cancel
-                intent.putExtra("session_end", true);
-                // Auto-click OK/Cancel to dismiss
-                clickButton(rootNode, "OK", "Cancel", "Dismiss");
-            } else {
-                intent.putExtra("session_end", false);
-            }
-
-            sendBroadcast(intent);
-
-            // Bring our app to front (extra safety to hide USSD)
-            bringAppToFront();
+            handleScreen(rootNode, snapshot, response, newWindow);
         }
 
+        snapshot.recycle();
         rootNode.recycle();
     }
 
-    private void extractAllText(AccessibilityNodeInfo node, StringBuilder sb) {
-        if (node == null) return;
+    private void handleScreen(AccessibilityNodeInfo rootNode, ScreenSnapshot snapshot, String response,
+                              boolean newWindow) {
+        UssdScreen screen = resolveScreen(response);
+        if (replyInFlight && !newWindow && currentScreen != null
+                && screen.fingerprint.equals(currentScreen.fingerprint)) {
+            // Re-read of the screen we just answered (our own set-text changes
+            // its content); wait for the operator's next screen. A new dialog
+            // with the same text - a menu shown again - still counts
+            return;
+        }
 
-        // Get text from this node
-        if (node.getText() != null) {
-            String text = node.getText().toString();
-            // Skip button labels
-            if (!isButtonText(node, text)) {
-                if (sb.length() > 0) sb.append("\n");
-                sb.append(text);
+        replyInFlight = false;
+        lastResponse = response;
+        long generation = commandGate.onScreen();
+        ScreenClassifier.Kind kind = ScreenClassifier.classify(screen, snapshot.isInteractive());
+        Log.d(TAG, "USSD Response (" + kind + "): " + response);
+
+        if (currentScreen == null) {
+            AccessibilityWatchdog.onFirstScreen();
+            exporter.startSession(AccessibilityWatchdog.lastStartLatencyMs(),
+                    AccessibilityWatchdog.lastStartWasCold(),
+                    recovery.isRecovering() ? recovery.attempts() : 0);
+            // A first dial answered with "Connection problem" never had a
+            // session - nothing to root the menu graph on or to recover
+            if (!kind.isTerminal()) {
+                if (menuCache != null) menuCache.setRoot(screen.fingerprint);
+                recovery.onSessionStart(screen.fingerprint);
             }
+        } else if (pendingKey != null && !screen.fingerprint.equals(currentScreen.fingerprint)) {
+            // The same menu again (an invalid key) isn't a step anywhere
+            if (menuCache != null) {
+                menuCache.recordTransition(currentScreen.fingerprint, pendingKey, screen.fingerprint);
+            }
+            recovery.onMenuStep(pendingKey, screen);
         }
+        pendingKey = null;
+        currentScreen = screen;
+        exporter.screen(screen);
 
-        // Also check content description
-        if (node.getContentDescription() != null && node.getText() == null) {
-            String desc = node.getContentDescription().toString();
-            if (sb.length() > 0) sb.append("\n");
-            sb.append(desc);
+        if (!kind.isTerminal() && advanceAutopilot(rootNode, screen)) {
+            // Intermediate screen of a jump - already answered, don't show it
+            return;
         }
 
-        // Recurse into children
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                extractAllText(child, sb);
-                child.recycle();
+        if (kind == ScreenClassifier.Kind.TIMEOUT && recoverFromDrop(response)) {
+            // "Connection problem" - clear it away and let the chat re-dial
+            snapshot.dismiss();
+            return;
+        }
+
+        // Send response to MainActivity. pin_prompt lets the chat switch to
+        // secure PIN entry for this screen
+        ResponseBuffer.addResponse(response, kind.isTerminal(), kind.name(), screen.isPinPrompt(),
+                generation);
+        commandGate.onPublished(generation);
+
+        if (kind.isTerminal()) {
+            // Final/notification USSD - has only OK/Cancel, dismiss it with the
+            // button we already found during the snapshot
+            snapshot.dismiss();
+            exporter.endSession(kind.name().toLowerCase(), null);
+            resetSessionState();
+        } else {
+            armDialogCheck();
+        }
+
+        notifyChat("com.ussdchat.USSD_RESPONSE");
+
+        // Bring our app to front (extra safety to hide USSD) - skipped when
+        // it's already there, saving an activity-manager round-trip per screen
+        if (!MainActivity.isResumed()) {
+            bringAppToFront();
+        }
+    }
+
+    // Cache hit skips parsing; a miss parses the menu and remembers it
+    private UssdScreen resolveScreen(String response) {
+        if (menuCache == null) return UssdScreen.parse(response);
+        String fingerprint = UssdScreen.fingerprint(response);
+        UssdScreen screen = menuCache.lookup(fingerprint);
+        if (screen == null) {
+            screen = UssdScreen.parse(response);
+            menuCache.putScreen(screen);
+        }
+        return screen;
+    }
+
+    /**
+     * Plays the next keystroke of an active jump. Returns true if the screen was
+     * answered automatically, false if it should be shown to the user.
+     */
+    private boolean advanceAutopilot(AccessibilityNodeInfo rootNode, UssdScreen screen) {
+        if (pendingJump != null) {
+            String query = pendingJump;
+            pendingJump = null;
+            startAutopilot(menuCache != null ? menuCache.findRoute(screen.fingerprint, query) : null);
+        } else {
+            // First screen after an operator drop: walk back to where the user was
+            MenuCache.Route replay = recovery.takeReplay(screen.fingerprint);
+            if (replay != null) startAutopilot(replay);
+        }
+        if (autopilot == null) return false;
+
+        if (autopilotStep > 0) {
+            String expected = autopilot.expected.get(autopilotStep - 1);
+            if (expected != null && !expected.equals(screen.fingerprint)) {
+                Log.d(TAG, "Menu changed under jump, handing back to user");
+                autopilot = null;
+                return false;
             }
         }
+        if (autopilotStep >= autopilot.keys.size()) {
+            autopilot = null;
+            return false;
+        }
+
+        String key = autopilot.keys.get(autopilotStep++);
+        if (!submitInput(rootNode, key)) {
+            autopilot = null;
+            return false;
+        }
+        exporter.input(key, false, true);
+        pendingKey = key;
+        return true;
     }
 
-    private boolean isButtonText(AccessibilityNodeInfo node, String text) {
-        String className = node.getClassName() != null ? node.getClassName().toString() : "";
-        if (className.contains("Button")) return true;
-        String lower = text.toLowerCase().trim();
-        return lower.equals("send") || lower.equals("cancel") || lower.equals("ok") ||
-               lower.equals("reply") || lower.equals("dismiss");
+    private void startAutopilot(MenuCache.Route route) {
+        autopilot = route;
+        autopilotStep = 0;
+        if (route != null) Log.d(TAG, "Jumping via keys " + route.keys);
+    }
+
+    private void resetSessionState() {
+        currentScreen = null;
+        pendingKey = null;
+        autopilot = null;
+        replyInFlight = false;
+        ussdWindowId = -1;
+        commandGate.onSessionEnd();
+        handler.removeCallbacks(dialogCheck);
+        // Kept while a re-dial is armed; cleared once the user's session is really over
+        if (!recovery.isRecovering()) recovery.reset();
+    }
+
+    private void armDialogCheck() {
+        dialogMissingChecks = 0;
+        handler.removeCallbacks(dialogCheck);
+        handler.postDelayed(dialogCheck, DIALOG_CHECK_MS);
+    }
+
+    private boolean ussdDialogGone() {
+        List<AccessibilityWindowInfo> windows = getWindows();
+        if (windows == null || windows.isEmpty()) return false; // can't tell without window access
+        AccessibilityNodeInfo root = findUssdRoot(windows, -1);
+        if (root == null) return true;
+        root.recycle();
+        return false;
+    }
+
+    /**
+     * The operator dropped the session. Arms a replay of the menu path and asks
+     * the chat to re-dial. Returns false if the session can't be recovered
+     * (retries used up, or a PIN already went out), leaving the caller to end it
+     * and record its outcome.
+     */
+    private boolean recoverFromDrop(String reason) {
+        Log.w(TAG, "Session dropped (" + reason + ") after " + recovery.idleMs() / 1000 + " s idle");
+        if (!recovery.prepare()) return false;
+
+        exporter.endSession("dropped", reason);
+        resetSessionState();
+        ResponseBuffer.addRedial("⚠️ The operator dropped the session. Reconnecting to where you were...");
+        notifyChat("com.ussdchat.USSD_RESPONSE");
+        return true;
+    }
+
+    private void endDroppedSession() {
+        exporter.endSession("dropped", "dialog closed");
+        ResponseBuffer.addResponse("Session closed by the operator.", true,
+                ScreenClassifier.Kind.TIMEOUT.name(), false, 0);
+        resetSessionState();
+        notifyChat("com.ussdchat.USSD_RESPONSE");
     }
 
     private String cleanResponse(String response) {
@@ -174,48 +448,85 @@ public class UssdAccessibilityService extends AccessibilityService {
         return clean.toString();
     }
 
-    private boolean hasEditText(AccessibilityNodeInfo node) {
-        if (node == null) return false;
-        String className = node.getClassName() != null ? node.getClassName().toString() : "";
-        if (className.contains("EditText")) return true;
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                boolean found = hasEditText(child);
-                child.recycle();
-                if (found) return true;
+    private void handleUserInput(String input) {
+        // Free text may be sensitive even if we didn't spot the PIN prompt
+        boolean menuInput = currentScreen != null && currentScreen.isMenu();
+        Log.d(TAG, "Handling user input: " + (menuInput ? input : "(" + input.length() + " chars)"));
+
+        recovery.touch();
+        AccessibilityNodeInfo rootNode = findUssdRoot(-1);
+        if (rootNode == null) {
+            // Dialog gone under an open session - the operator dropped it
+            if (currentScreen == null || !recoverFromDrop("dialog not found on input")) {
+                sendError("USSD dialog not found");
+            } else {
+                ResponseBuffer.addNotice("Please send your reply again once the menu is back.");
+                notifyChat("com.ussdchat.USSD_RESPONSE");
             }
+            return;
         }
-        return false;
-    }
 
-    private boolean hasSendOrReplyButton(AccessibilityNodeInfo node) {
-        if (node == null) return false;
-        String className = node.getClassName() != null ? node.getClassName().toString() : "";
-        if (className.contains("Button")) {
-            String text = node.getText() != null ? node.getText().toString().toLowerCase() : "";
-            if (text.contains("send") || text.contains("reply")) return true;
-        }
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                boolean found = hasSendOrReplyButton(child);
-                child.recycle();
-                if (found) return true;
+        // A menu name instead of a key ("send money") jumps along a cached path
+        boolean jumped = false;
+        if (menuCache != null && currentScreen != null && currentScreen.isMenu()
+                && !currentScreen.hasOption(input)) {
+            MenuCache.Route route = menuCache.findRoute(currentScreen.fingerprint, input);
+            if (route != null) {
+                startAutopilot(route);
+                input = route.keys.get(autopilotStep++);
+                jumped = true;
             }
         }
-        return false;
-    }
 
-    private void handleUserInput(String input) {
-        Log.d(TAG, "Handling user input: " + input);
+        if (submitInput(rootNode, input)) {
+            // Same rule as the log line above: free text may be a PIN
+            exporter.input(input, !menuInput, jumped);
+            // Only menu keys become graph edges - free text (amounts, PINs) never does
+            pendingKey = currentScreen != null && currentScreen.hasOption(input) ? input.trim() : null;
+            if (pendingKey == null) recovery.onFreeText(false);
+        } else {
+            autopilot = null;
+            sendError("Could not find input field in USSD dialog");
+        }
 
-        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
-        if (rootNode == null) {
-            sendError("USSD dialog not found");
+        rootNode.recycle();
+    }
+
+    /**
+     * Types a PIN straight into the dialog. Called directly by MainActivity on
+     * the main thread so the PIN never travels in a broadcast. The buffer is
+     * wiped before returning, whatever the outcome.
+     */
+    void submitSecret(char[] secret, long seq, long generation) {
+        if (!commandGate.admitInput(seq, generation)) {
+            Arrays.fill(secret, '\0');
+            rejectStaleInput(seq);
             return;
         }
+        AccessibilityNodeInfo rootNode = findUssdRoot(-1);
+        try {
+            if (rootNode == null) {
+                // Nothing was typed, so the session can still be recovered
+                if (currentScreen == null || !recoverFromDrop("dialog not found on PIN")) {
+                    sendError("USSD dialog not found");
+                } else {
+                    ResponseBuffer.addNotice("Please enter your PIN again once the prompt is back.");
+                    notifyChat("com.ussdchat.USSD_RESPONSE");
+                }
+            } else if (submitInput(rootNode, CharBuffer.wrap(secret))) {
+                exporter.input(null, true, false);
+                recovery.onFreeText(true);
+                pendingKey = null;
+            } else {
+                sendError("Could not find input field in USSD dialog");
+            }
+        } finally {
+            Arrays.fill(secret, '\0');
+            if (rootNode != null) rootNode.recycle();
+        }
+    }
 
+    private boolean submitInput(AccessibilityNodeInfo rootNode, CharSequence input) {
         // Find EditText and set the input
         boolean inputSet = setEditTextValue(rootNode, input);
 
@@ -227,14 +538,15 @@ public class UssdAccessibilityService extends AccessibilityService {
                 clickButton(rootNode, "OK", "Send", "Reply");
             }
             lastResponse = ""; // Reset to catch new response
-        } else {
-            sendError("Could not find input field in USSD dialog");
+            replyInFlight = true;
+            // The dialog closes until the operator answers - a slow UPI debit
+            // must not look like a drop. handleScreen re-arms the check
+            handler.removeCallbacks(dialogCheck);
         }
-
-        rootNode.recycle();
+        return inputSet;
     }
 
-    private boolean setEditTextValue(AccessibilityNodeInfo node, String value) {
+    private boolean setEditTextValue(AccessibilityNodeInfo node, CharSequence value) {
         if (node == null) return false;
 
         String className = node.getClassName() != null ? node.getClassName().toString() : "";
@@ -254,7 +566,8 @@ public class UssdAccessibilityService extends AccessibilityService {
             args.putCharSequence(
                     AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, value);
             boolean result = node.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, args);
-            Log.d(TAG, "Set text result: " + result + " value: " + value);
+            // Never log the value itself - it may be a PIN
+            Log.d(TAG, "Set text result: " + result + " (" + value.length() + " chars)");
             return result;
         }
 
@@ -309,7 +622,7 @@ public class UssdAccessibilityService extends AccessibilityService {
 
     private void cancelUssdDialog() {
         Log.d(TAG, "Cancelling USSD dialog");
-        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
+        AccessibilityNodeInfo rootNode = findUssdRoot(-1);
         if (rootNode != null) {
             boolean clicked = clickButton(rootNode, "Cancel", "Dismiss", "OK");
             if (!clicked) {
@@ -322,12 +635,14 @@ public class UssdAccessibilityService extends AccessibilityService {
         }
 
         // Notify session end
-        Intent intent = new Intent("com.ussdchat.USSD_RESPONSE");
-        intent.putExtra("response", "Session cancelled by user.");
-        intent.putExtra("session_end", true);
-        sendBroadcast(intent);
-
-        lastResponse = "";
+        ResponseBuffer.addResponse("Session cancelled by user.", true, null, false, 0);
+        notifyChat("com.ussdchat.USSD_RESPONSE");
+
+        // lastResponse is kept so the dismissed dialog's trailing events
+        // aren't read as a new session; it is cleared when the next one dials
+        exporter.endSession("cancelled", null);
+        recovery.reset();
+        resetSessionState();
     }
 
     private void bringAppToFront() {
@@ -343,9 +658,17 @@ public class UssdAccessibilityService extends AccessibilityService {
     }
 
     private void sendError(String error) {
-        Intent intent = new Intent("com.ussdchat.USSD_ERROR");
-        intent.putExtra("error", error);
-        sendBroadcast(intent);
+        exporter.endSession("error", error);
+        recovery.reset();
+        resetSessionState();
+        ResponseBuffer.addError(error);
+        notifyChat("com.ussdchat.USSD_ERROR");
+    }
+
+    // The payload is already in ResponseBuffer; the broadcast only wakes a
+    // resumed chat up. A paused one drains the buffer on resume instead.
+    private void notifyChat(String action) {
+        sendBroadcast(new Intent(action));
     }
 
     @Override
@@ -353,9 +676,16 @@ public class UssdAccessibilityService extends AccessibilityService {
         Log.d(TAG, "Accessibility Service Interrupted");
     }
 
+    @Override
+    public boolean onUnbind(Intent intent) {
+        AccessibilityWatchdog.onDisconnected(this);
+        return super.onUnbind(intent);
+    }
+
     @Override
     public void onDestroy() {
         super.onDestroy();
+        AccessibilityWatchdog.onDisconnected(this);
         try {
             unregisterReceiver(inputReceiver);
         } catch (Exception ignored) {}
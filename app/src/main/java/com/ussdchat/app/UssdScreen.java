@@ -0,0 +1,91 @@
+package com.ussdchat.app;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A parsed USSD screen: the cleaned text, a stable fingerprint of that text
+ * and the numbered menu options it offers (key -> label), if any.
+ */
+final class UssdScreen {
+
+    // Matches menu lines like "1. Send Money", "2) Request", "00 - Back", "*.Main menu"
+    private static final Pattern OPTION_LINE =
+            Pattern.compile("^\\s*(\\d{1,2}|\\*|#)\\s*[.):\\-]\\s*(.+?)\\s*$");
+    // "Enter UPI PIN", "Enter MPIN", "pin:"
+    private static final Pattern PIN_PROMPT =
+            Pattern.compile("\\b(upi\\s*)?m?pin\\b", Pattern.CASE_INSENSITIVE);
+
+    final String text;
+    final String fingerprint;
+    final Map<String, String> options;
+
+    UssdScreen(String text, String fingerprint, Map<String, String> options) {
+        this.text = text;
+        this.fingerprint = fingerprint;
+        this.options = Collections.unmodifiableMap(options);
+    }
+
+    static UssdScreen parse(String text) {
+        return new UssdScreen(text, fingerprint(text), parseOptions(text));
+    }
+
+    static Map<String, String> parseOptions(String text) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String line : text.split("\n")) {
+            Matcher m = OPTION_LINE.matcher(line);
+            if (m.matches()) {
+                options.put(m.group(1), m.group(2));
+            }
+        }
+        return options;
+    }
+
+    /**
+     * 64-bit FNV-1a over the lower-cased, whitespace-collapsed text. Cheap enough
+     * to run on every snapshot and stable across process restarts.
+     */
+    static String fingerprint(String text) {
+        String normalized = text.toLowerCase(Locale.ROOT).replaceAll("\\s+", " ").trim();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < normalized.length(); i++) {
+            hash ^= normalized.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return Long.toHexString(hash);
+    }
+
+    boolean isMenu() {
+        return !options.isEmpty();
+    }
+
+    /** A prompt (not a menu) asking for a PIN. */
+    boolean isPinPrompt() {
+        return !isMenu() && PIN_PROMPT.matcher(text).find();
+    }
+
+    boolean hasOption(String key) {
+        return options.containsKey(key.trim());
+    }
+
+    /** Returns the key of the option whose label matches the query, or null. */
+    String findOptionKey(String query) {
+        String q = normalizeLabel(query);
+        if (q.isEmpty()) return null;
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            String label = normalizeLabel(option.getValue());
+            if (label.equals(q) || (q.length() >= 3 && label.contains(q))) {
+                return option.getKey();
+            }
+        }
+        return null;
+    }
+
+    static String normalizeLabel(String s) {
+        return s.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", " ").trim();
+    }
+}
@@ -0,0 +1,142 @@
+package com.ussdchat.app;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CommandGateTest {
+
+    private static final int SENDERS = 8;
+    private static final int ROUNDS = 5000;
+
+    @Test
+    public void racingCommandsAdmitOneInputPerScreenAndNoStaleSequence() throws Exception {
+        CommandGate gate = new CommandGate();
+        gate.onPublished(gate.onScreen());
+
+        Map<Long, AtomicInteger> inputsPerGeneration = new ConcurrentHashMap<>();
+        AtomicInteger staleAdmitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(SENDERS + 1);
+        List<Future<?>> tasks = new ArrayList<>();
+
+        // The service: new screens, now and then a session end
+        tasks.add(pool.submit(() -> {
+            start.await();
+            for (int i = 1; i <= ROUNDS; i++) {
+                gate.onPublished(gate.onScreen());
+                if (i % 100 == 0) gate.onSessionEnd();
+                Thread.yield();
+            }
+            return null;
+        }));
+
+        // The chat: inputs and cancels against whatever screen it last saw
+        for (int t = 0; t < SENDERS; t++) {
+            tasks.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < ROUNDS; i++) {
+                    long target = gate.generation();
+                    long seq = CommandGate.nextSeq();
+                    if (i % 10 == 0) {
+                        gate.admitCancel(seq, target);
+                    } else if (gate.admitInput(seq, target)) {
+                        inputsPerGeneration.computeIfAbsent(target, g -> new AtomicInteger()).incrementAndGet();
+                    }
+                    // The same command delivered again, as a duplicate or out of order
+                    if (gate.admitInput(seq, target) || gate.admitCancel(seq, target)) {
+                        staleAdmitted.incrementAndGet();
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> task : tasks) {
+            task.get(30, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(0, staleAdmitted.get());
+        for (Map.Entry<Long, AtomicInteger> e : inputsPerGeneration.entrySet()) {
+            assertEquals("inputs admitted for generation " + e.getKey(), 1, e.getValue().get());
+        }
+    }
+
+    @Test
+    public void inputOnlyForCurrentScreenAndOnlyOnce() {
+        CommandGate gate = new CommandGate();
+        long first = gate.onScreen();
+        long second = gate.onScreen();
+
+        assertFalse(gate.admitInput(CommandGate.nextSeq(), first));
+        assertTrue(gate.admitInput(CommandGate.nextSeq(), second));
+        assertFalse(gate.admitInput(CommandGate.nextSeq(), second));
+    }
+
+    @Test
+    public void olderSequenceRejected() {
+        CommandGate gate = new CommandGate();
+        long generation = gate.onScreen();
+        long older = CommandGate.nextSeq();
+        long newer = CommandGate.nextSeq();
+
+        assertTrue(gate.admitCancel(newer, generation));
+        assertFalse(gate.admitCancel(older, generation));
+        assertFalse(gate.admitCancel(newer, generation));
+    }
+
+    @Test
+    public void cancelAdmittedWhileJumpStepsAreHidden() {
+        CommandGate gate = new CommandGate();
+        // Previous session: the chat last saw this screen
+        long seen = gate.onScreen();
+        gate.onPublished(seen);
+        gate.onSessionEnd();
+
+        // New session plays a cached jump; none of its screens reach the chat
+        gate.onScreen();
+        gate.onScreen();
+        gate.onScreen();
+
+        assertTrue(gate.admitCancel(CommandGate.nextSeq(), seen));
+    }
+
+    @Test
+    public void cancelAdmittedWhileRedialIsPending() {
+        CommandGate gate = new CommandGate();
+        long seen = gate.onScreen();
+        gate.onPublished(seen);
+        // "Connection problem" is swallowed and the session re-dials
+        gate.onScreen();
+        gate.onSessionEnd();
+
+        assertTrue(gate.admitCancel(CommandGate.nextSeq(), seen));
+    }
+
+    @Test
+    public void cancelFromEndedSessionRejected() {
+        CommandGate gate = new CommandGate();
+        long seen = gate.onScreen();
+        gate.onPublished(seen);
+        // Final screen published and the session over before the cancel lands
+        gate.onPublished(gate.onScreen());
+        gate.onSessionEnd();
+
+        assertFalse(gate.admitCancel(CommandGate.nextSeq(), seen));
+    }
+}